@@ -0,0 +1,67 @@
+package amath383;
+
+/**
+ * <b>AnnealingSchedule</b> gives the temperature used by the stochastic
+ * recall of a hopfield network at each sweep over its nodes.
+ * Once the schedule runs out of sweeps, recall continues at temperature 0,
+ * which is the same as the deterministic asynchronous recall.
+ */
+public interface AnnealingSchedule {
+
+	/**
+	 * Get the number of annealing sweeps.
+	 * @return number of sweeps done at a temperature above 0.
+	 */
+	int sweeps();
+
+	/**
+	 * Get the temperature of a sweep.
+	 * @precon 0 <= sweep < sweeps()
+	 * @param sweep the sweep number, starting at 0.
+	 * @return the temperature of that sweep.
+	 */
+	double temperature(int sweep);
+
+	/**
+	 * Create a schedule which cools down geometrically: T(k) = t0 * alpha^k.
+	 * @param t0 starting temperature.
+	 * @param alpha cooling factor, 0 < alpha < 1.
+	 * @param sweeps number of sweeps.
+	 * @return a geometric schedule.
+	 */
+	static AnnealingSchedule geometric(final double t0, final double alpha, final int sweeps) {
+		if (t0 <= 0 || alpha <= 0 || alpha >= 1 || sweeps < 0) {
+			throw new IllegalArgumentException("need t0 > 0, 0 < alpha < 1, sweeps >= 0");
+		}
+		return new AnnealingSchedule() {
+			public int sweeps() {
+				return sweeps;
+			}
+
+			public double temperature(int sweep) {
+				return t0 * Math.pow(alpha, sweep);
+			}
+		};
+	}
+
+	/**
+	 * Create a schedule which cools down linearly from t0 towards 0.
+	 * @param t0 starting temperature.
+	 * @param sweeps number of sweeps.
+	 * @return a linear schedule.
+	 */
+	static AnnealingSchedule linear(final double t0, final int sweeps) {
+		if (t0 <= 0 || sweeps < 0) {
+			throw new IllegalArgumentException("need t0 > 0, sweeps >= 0");
+		}
+		return new AnnealingSchedule() {
+			public int sweeps() {
+				return sweeps;
+			}
+
+			public double temperature(int sweep) {
+				return t0 * (sweeps - sweep) / sweeps;
+			}
+		};
+	}
+}
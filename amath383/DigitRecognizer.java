@@ -1,5 +1,6 @@
 package amath383;
 
+import java.io.File;
 import java.util.Scanner;
 
 /**
@@ -20,6 +21,8 @@ public class DigitRecognizer {
 	
 	public static Mode mode = Mode.DEFAULT;  // default mode
 	public static final int NUM_OF_ROWS = 5;  // number of rows for the digit pattern
+	public static final double ANNEALING_ALPHA = 0.8;  // cooling factor for stochastic recall
+	public static final int ANNEALING_SWEEPS = 20;  // annealing sweeps for stochastic recall
 	public static final String[] TRAIN_PATTERNS = 
 		{"11111001100110011111", "01100110011001101111", 
 		 "11110001111110001111", "11110001111100011111",
@@ -39,38 +42,56 @@ public class DigitRecognizer {
 		// Create Hopfield Network with given number of columns,
 		// and initialize input and output digit patterns.
 		Hopfield hopfield = new Hopfield(numOfNodes);  // hopfield for training
+		RecallTracer tracer = null;  // recall trace, null if not tracing
 		
 		boolean flag = true;
-		while (flag) {
-			// Show available options.
-			showOptions();
+		try {
+			while (flag) {
+				// Show available options.
+				showOptions();
 			
-			// Take an input option and translate to a command.
-			String in = scan.nextLine();
-			String command = toCommand(in);
+				// Take an input option and translate to a command.
+				String in = scan.nextLine();
+				String command = toCommand(in);
 			
-			// Do the corresponding command.
-			switch (command) {
-				case "train" :
-					train(hopfield, numOfNodes, scan);
-					break;
-				case "recognize":
-					recognize(hopfield, numOfNodes, scan);
-					break;
-				case "recognizeAsyn":
-					recognizeAsyn(hopfield, numOfNodes, scan);
-				case "clear":
-					clear(hopfield);
-					break;
-				case "select mode":
-					selectMode(scan);
-					break;
-				case "exit":
-					flag = false;
-					break;
-				case "alreadyTrained":
-					alreadyTrained(hopfield, numOfNodes);
-					break;
+				// Do the corresponding command.
+				switch (command) {
+					case "train" :
+						train(hopfield, numOfNodes, scan);
+						break;
+					case "recognize":
+						recognize(hopfield, numOfNodes, scan);
+						break;
+					case "recognizeAsyn":
+						recognizeAsyn(hopfield, numOfNodes, scan);
+						break;
+					case "recognizeStochastic":
+						recognizeStochastic(hopfield, numOfNodes, scan);
+						break;
+					case "quantize":
+						quantize(hopfield, numOfNodes, scan);
+						break;
+					case "clear":
+						clear(hopfield);
+						break;
+					case "select mode":
+						selectMode(scan);
+						break;
+					case "exit":
+						flag = false;
+						break;
+					case "alreadyTrained":
+						alreadyTrained(hopfield, numOfNodes);
+						break;
+					case "trace":
+						tracer = trace(hopfield, tracer, scan);
+						break;
+				}
+			}
+		} finally {
+			// Write out the rest of the trace, if any.
+			if (tracer != null) {
+				tracer.close();
 			}
 		}
 		scan.close();
@@ -107,7 +128,7 @@ public class DigitRecognizer {
 	 * @param hopfield
 	 */
 	private static void clear(Hopfield hopfield) {
-		hopfield.getWeightMatrix().clear();
+		hopfield.clear();
 		System.out.println("------- Weight matrix cleared --------");
 	}
 	
@@ -128,6 +149,90 @@ public class DigitRecognizer {
 		System.out.print(Matrix.getMatrix(onputDigitPattern, NUM_OF_ROWS).toPackedString());
 	}
 	
+	/**
+	 * Start recording trains and recalls to a trace file, or stop if recording.
+	 * Unlike SHOW_MATH, tracing does no string formatting while recalling;
+	 * the trace is read with TraceViewer.
+	 * @param hopfield Hopfield model
+	 * @param tracer current tracer, null if not tracing
+	 * @param scan scanner
+	 * @return the new tracer, null if not tracing
+	 * @throws Exception
+	 */
+	private static RecallTracer trace(Hopfield hopfield, RecallTracer tracer, Scanner scan) throws Exception {
+		if (tracer != null) {
+			hopfield.setTracer(null);
+			tracer.close();
+			System.out.println("------- Trace stopped --------");
+			return null;
+		}
+		System.out.println("> Provide trace file: ");
+		File file = new File(scan.nextLine());
+		tracer = new RecallTracer(file);
+		hopfield.setTracer(tracer);
+		System.out.println("------- Tracing to " + file + " until trace is selected again --------");
+		System.out.println("------- View with: java amath383.TraceViewer " + file + " --------");
+		return tracer;
+	}
+	
+	/**
+	 * Quantize the weight matrix, and compare its recall with the full
+	 * precision one on the training patterns and on every one of them
+	 * with one node flipped.
+	 * @param hopfield Hopfield model
+	 * @param numOfNodes number of nodes
+	 * @param scan scanner
+	 * @throws Exception
+	 */
+	private static void quantize(Hopfield hopfield, int numOfNodes, Scanner scan) throws Exception {
+		System.out.println("> Select quantization: ");
+		System.out.println("> 1) INT8");
+		System.out.println("> 2) TERNARY");
+		String in = scan.nextLine();
+		QuantizedWeights.Scheme scheme = QuantizedWeights.Scheme.INT8;
+		if (in.equalsIgnoreCase("TERNARY") || in.equals("2")) {
+			scheme = QuantizedWeights.Scheme.TERNARY;
+		}
+		QuantizedWeights quantized = hopfield.quantize(scheme);
+		System.out.println("------- " + scheme + " max weight error: " + quantized.getMaxError() + " --------");
+		if (numOfNodes != TRAIN_PATTERNS[0].length()) {
+			System.out.println("Evaluation needs " + TRAIN_PATTERNS[0].length() + " nodes");
+			return;
+		}
+		double[][] probes = new double[TRAIN_PATTERNS.length * (numOfNodes + 1)][];
+		double[][] targets = new double[probes.length][];
+		int p = 0;
+		for (String trainPattern : TRAIN_PATTERNS) {
+			double[] target = getInput(trainPattern, numOfNodes);
+			for (int flipped = -1; flipped < numOfNodes; flipped++) {
+				probes[p] = target.clone();
+				if (flipped >= 0) {
+					probes[p][flipped] = 1 - probes[p][flipped];
+				}
+				targets[p++] = target;
+			}
+		}
+		System.out.println(quantized.evaluate(hopfield, probes, targets));
+	}
+	
+	/**
+	 * Recognize the input digit pattern with annealed stochastic recall.
+	 * @param hopfield Hopfield model
+	 * @param numOfNodes number of nodes
+	 * @param scan scanner
+	 * @throws Exception
+	 */
+	private static void recognizeStochastic(Hopfield hopfield, int numOfNodes, Scanner scan) throws Exception {
+		System.out.println("> Provide input pattern: ");
+		double[] inputDigitPattern = getInput(scan.nextLine(), numOfNodes);
+		double[] onputDigitPattern = hopfield.updateStochastic(inputDigitPattern,
+				AnnealingSchedule.geometric(numOfNodes / 2.0, ANNEALING_ALPHA, ANNEALING_SWEEPS));
+		System.out.println("Input pattern:");
+		System.out.print(Matrix.getMatrix(inputDigitPattern, NUM_OF_ROWS).toPackedString());
+		System.out.println("Output pattern:");
+		System.out.print(Matrix.getMatrix(onputDigitPattern, NUM_OF_ROWS).toPackedString());
+	}
+	
 	/**
 	 * Recognize the input digit pattern.
 	 * @param hopfield Hopfield model
@@ -174,6 +279,9 @@ public class DigitRecognizer {
 		System.out.println("> 5) select mode");
 		System.out.println("> 6) exit");
 		System.out.println("> 7) alreadyTrained"); 
+		System.out.println("> 8) recognizeStochastic");
+		System.out.println("> 9) quantize");
+		System.out.println("> 10) trace (start/stop)");
 	}
 	
 	/**
@@ -185,6 +293,9 @@ public class DigitRecognizer {
 	 *  5) select mode
 	 *  6) exit
 	 *  7) alreadyTrained
+	 *  8) recognizeStochastic
+	 *  9) quantize
+	 *  10) trace
 	 * @param in input
 	 * @return "" if no command matches,
 	 * 		   the corresponding command.
@@ -204,6 +315,12 @@ public class DigitRecognizer {
 			return "exit";
 		} else if (in.equalsIgnoreCase("alreadyTrained") || in.equals("7")) {
 			return "alreadyTrained";
+		} else if (in.equalsIgnoreCase("recognizeStochastic") || in.equals("8")) {
+			return "recognizeStochastic";
+		} else if (in.equalsIgnoreCase("quantize") || in.equals("9")) {
+			return "quantize";
+		} else if (in.equalsIgnoreCase("trace") || in.equals("10")) {
+			return "trace";
 		}
 		return "";
 	} 
@@ -0,0 +1,472 @@
+package amath383;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <b>DurableHopfield</b> keeps the training of a hopfield network
+ * across restarts, without rewriting the weight matrix for every pattern.
+ * Every train and forget is appended to a {@link TrainingJournal} before it
+ * returns. On open, the last weight snapshot is loaded and the journals
+ * written after it are replayed. Compaction writes a new snapshot in the
+ * background and deletes the journals it covers.
+ *
+ * Training is applied to the network only once it is on disk, in journal
+ * order, under a write lock; recall goes through this class under the read
+ * lock, so it can run while other threads train. Once the journal fails,
+ * the network may be behind what its callers were told, so recall fails too.
+ *
+ * Files in the directory:
+ *   weights.snapshot   int MAGIC, int numOfNodes, long generation, byte kind,
+ *                      then for DENSE the weight matrix as n x n doubles by
+ *                      rows, or for PATTERNS an int count and the packed
+ *                      stored patterns of a pattern-backed network.
+ *                      It covers every journal before that generation.
+ *   journal-N.log      training journal of generation N.
+ */
+public class DurableHopfield implements Closeable {
+	static final int SNAPSHOT_MAGIC = 0x48534E50;  // "HSNP"
+	static final String SNAPSHOT = "weights.snapshot";
+	// Snapshot kinds.
+	static final byte DENSE = 0;
+	static final byte PATTERNS = 1;
+
+	private final File directory;
+	private final Hopfield hopfield;  // guarded by lock
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final TrainingJournal journal;
+	private final ArrayDeque<Record> pending = new ArrayDeque<Record>();  // appended, not applied; guarded by this
+	private final int compactionThreshold;
+	private final ExecutorService compactor;
+	private long appliedRecords;  // guarded by lock
+	private long recordsSinceCompaction;  // guarded by lock
+	private Future<?> compaction;  // guarded by lock
+	private volatile IOException failure;
+
+	/**
+	 * Open a durable hopfield network, recovering what was trained before.
+	 * @param directory directory of the snapshot and journals, created if missing.
+	 * @param numOfNodes number of nodes.
+	 * @param lazy true to start pattern-backed if there is no snapshot yet,
+	 * 		  otherwise the snapshot decides.
+	 * @param compactionThreshold number of journal records after which
+	 * 		  a compaction is started in the background, 0 to never start one.
+	 * @throws Exception if the directory holds a different network, or cannot be read.
+	 */
+	public DurableHopfield(File directory, int numOfNodes, boolean lazy, int compactionThreshold)
+			throws Exception {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create " + directory);
+		}
+		this.directory = directory;
+		this.compactionThreshold = compactionThreshold;
+
+		// Load the snapshot.
+		long generation = 0;
+		File snapshot = new File(directory, SNAPSHOT);
+		if (snapshot.exists()) {
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(snapshot)))) {
+				if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != numOfNodes) {
+					throw new IOException(snapshot + " is not a snapshot of " + numOfNodes + " nodes");
+				}
+				generation = in.readLong();
+				int kind = in.read();
+				if (kind == DENSE) {
+					double[][] w = new double[numOfNodes][numOfNodes];
+					for (double[] row : w) {
+						for (int j = 0; j < numOfNodes; j++) {
+							row[j] = in.readDouble();
+						}
+					}
+					hopfield = new Hopfield(Matrix.wrap(w));
+				} else if (kind == PATTERNS) {
+					hopfield = new Hopfield(numOfNodes, true);
+					double[] bipolarPattern = new double[numOfNodes];
+					for (int count = in.readInt(); count > 0; count--) {
+						PatternStore.unpack(PatternStore.readPacked(in, numOfNodes), bipolarPattern);
+						hopfield.train(Hopfield.fromBipolar(bipolarPattern));
+					}
+				} else {
+					throw new IOException(snapshot + " has an unknown kind " + kind);
+				}
+			}
+		} else {
+			hopfield = new Hopfield(numOfNodes, lazy);
+		}
+
+		// Replay the journals written after the snapshot, oldest first,
+		// and delete the ones it already covers.
+		long[] generations = journalGenerations(directory);
+		long nextGeneration = generation;
+		for (long g : generations) {
+			File file = TrainingJournal.file(directory, g);
+			if (g < generation) {
+				Files.delete(file.toPath());
+			} else {
+				recordsSinceCompaction += TrainingJournal.replay(file, hopfield);
+				nextGeneration = g + 1;
+			}
+		}
+		journal = new TrainingJournal(directory, numOfNodes, nextGeneration);
+		compactor = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "journal-compactor");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * @return true if the network computes net inputs from the stored patterns.
+	 * @throws IOException if the journal failed.
+	 */
+	public boolean isPatternBacked() throws IOException {
+		lock.readLock().lock();
+		try {
+			checkFailure();
+			return hopfield.isPatternBacked();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the weight matrix.
+	 * @return the weight matrix, see Hopfield.getWeightMatrix.
+	 * @throws IOException if the journal failed.
+	 */
+	public Matrix getWeightMatrix() throws IOException {
+		lock.readLock().lock();
+		try {
+			checkFailure();
+			return hopfield.getWeightMatrix();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Recognize an input digit pattern, see Hopfield.recognize.
+	 * @param inputDigitPattern input digit pattern.
+	 * @return an output pattern.
+	 * @throws IOException if the journal failed.
+	 */
+	public double[] recognize(double[] inputDigitPattern) throws IOException {
+		lock.readLock().lock();
+		try {
+			checkFailure();
+			return hopfield.recognize(inputDigitPattern);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Recall an input digit pattern by asynchronous updates, see Hopfield.updateAsyn.
+	 * @param inputDigitPattern input digit pattern.
+	 * @return an output pattern.
+	 * @throws IOException if the journal failed.
+	 */
+	public double[] updateAsyn(double[] inputDigitPattern) throws IOException {
+		lock.readLock().lock();
+		try {
+			checkFailure();
+			return hopfield.updateAsyn(inputDigitPattern);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Recall an input digit pattern by annealed stochastic updates,
+	 * see Hopfield.updateStochastic.
+	 * @param inputDigitPattern input digit pattern.
+	 * @param schedule annealing schedule.
+	 * @return an output pattern.
+	 * @throws IOException if the journal failed.
+	 */
+	public double[] updateStochastic(double[] inputDigitPattern, AnnealingSchedule schedule)
+			throws IOException {
+		lock.readLock().lock();
+		try {
+			checkFailure();
+			return hopfield.updateStochastic(inputDigitPattern, schedule);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Train an input digit pattern, returning once it is on disk.
+	 * @param inputDigitPattern input digit pattern.
+	 * @throws Exception
+	 */
+	public void train(double[] inputDigitPattern) throws Exception {
+		train(new double[][] { inputDigitPattern });
+	}
+
+	/**
+	 * Train a batch of input digit patterns, returning once all are on disk.
+	 * @param inputDigitPatterns input digit patterns.
+	 * @throws Exception
+	 */
+	public void train(double[][] inputDigitPatterns) throws Exception {
+		apply(TrainingJournal.TRAIN, inputDigitPatterns);
+	}
+
+	/**
+	 * Forget an input digit pattern, returning once it is on disk.
+	 * @param inputDigitPattern input digit pattern.
+	 * @throws Exception
+	 */
+	public void forget(double[] inputDigitPattern) throws Exception {
+		apply(TrainingJournal.FORGET, new double[][] { inputDigitPattern });
+	}
+
+	/**
+	 * Write a new snapshot and delete the journals it covers.
+	 * @throws Exception
+	 */
+	public void compact() throws Exception {
+		Future<?> running;
+		lock.writeLock().lock();
+		try {
+			checkFailure();
+			running = startCompaction();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		running.get();
+	}
+
+	/**
+	 * Wait for a running compaction, then close the journal.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			Future<?> running;
+			lock.writeLock().lock();
+			try {
+				running = compaction;
+			} finally {
+				lock.writeLock().unlock();
+			}
+			if (running != null) {
+				running.get();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			compactor.shutdown();
+			journal.close();
+		}
+	}
+
+	/**
+	 * Append patterns to the journal, wait for them to be on disk, then apply
+	 * them to the network. The wait is outside of the locks, so that
+	 * concurrent callers share an fsync.
+	 * @param op TrainingJournal.TRAIN or TrainingJournal.FORGET.
+	 * @param inputDigitPatterns input digit patterns.
+	 * @throws Exception
+	 */
+	private void apply(byte op, double[][] inputDigitPatterns) throws Exception {
+		for (double[] pattern : inputDigitPatterns) {
+			if (pattern.length != hopfield.getNumOfNodes()) {
+				throw new IllegalArgumentException("pattern length (" + pattern.length
+						+ ") does not match number of nodes (" + hopfield.getNumOfNodes() + ")");
+			}
+		}
+		if (inputDigitPatterns.length == 0) {
+			return;
+		}
+		long sequence = 0;
+		try {
+			synchronized (this) {
+				// The pending records are in journal order.
+				for (double[] pattern : inputDigitPatterns) {
+					sequence = journal.append(op, Hopfield.toBipolar(pattern));
+					pending.add(new Record(op, pattern.clone()));
+				}
+			}
+			journal.awaitDurable(sequence);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		}
+		lock.writeLock().lock();
+		try {
+			applyPending(sequence);
+			if (compactionThreshold > 0 && recordsSinceCompaction >= compactionThreshold
+					&& (compaction == null || compaction.isDone())) {
+				startCompaction();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Apply the pending records to the network, oldest first, up to a
+	 * record which is on disk. Other callers may have applied some already.
+	 * @precon holds the write lock
+	 * @param sequence sequence number of the last record to apply.
+	 * @throws Exception
+	 */
+	private void applyPending(long sequence) throws Exception {
+		while (appliedRecords < sequence) {
+			Record record;
+			synchronized (this) {
+				record = pending.poll();
+			}
+			if (record.op == TrainingJournal.TRAIN) {
+				hopfield.train(record.pattern);
+			} else {
+				hopfield.forget(record.pattern);
+			}
+			appliedRecords++;
+			recordsSinceCompaction++;
+		}
+	}
+
+	/**
+	 * Start a compaction in the background, unless one is running.
+	 * Neither the weight matrix nor the stored patterns are changed in place
+	 * by Hopfield, so the ones taken at the journal rotation can be written
+	 * out without the locks.
+	 * @precon holds the write lock
+	 * @return the compaction.
+	 * @throws Exception
+	 */
+	private Future<?> startCompaction() throws Exception {
+		if (compaction != null && !compaction.isDone()) {
+			return compaction;
+		}
+		// Rotate once every record so far is on disk, then bring the
+		// network up to the rotation, so the snapshot covers the old journals.
+		final long generation;
+		long rotatedRecords;
+		synchronized (this) {
+			try {
+				generation = journal.rotate();
+			} catch (IOException e) {
+				failure = e;
+				throw e;
+			}
+			rotatedRecords = appliedRecords + pending.size();
+		}
+		applyPending(rotatedRecords);
+		final long[][] patterns = hopfield.getStoredPatterns();
+		final Matrix weightMatrix = patterns == null ? hopfield.getWeightMatrix() : null;
+		recordsSinceCompaction = 0;
+		compaction = compactor.submit(() -> {
+			writeSnapshot(weightMatrix, patterns, generation);
+			// Only delete the covered journals once the new snapshot is on disk.
+			for (long g : journalGenerations(directory)) {
+				if (g < generation) {
+					Files.delete(TrainingJournal.file(directory, g).toPath());
+				}
+			}
+			return null;
+		});
+		return compaction;
+	}
+
+	/**
+	 * @throws IOException if the journal failed, so the network may hold
+	 * 		   less than what was trained.
+	 */
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("training journal failed", failure);
+		}
+	}
+
+	/**
+	 * Write a snapshot to a temporary file, then move it over the old one
+	 * and flush the directory.
+	 * @param weightMatrix weight matrix, null if pattern-backed.
+	 * @param patterns packed stored patterns, null if not pattern-backed.
+	 * @param generation first journal generation not in the snapshot.
+	 * @throws IOException
+	 */
+	private void writeSnapshot(Matrix weightMatrix, long[][] patterns, long generation) throws IOException {
+		File temporary = new File(directory, SNAPSHOT + ".tmp");
+		try (FileOutputStream file = new FileOutputStream(temporary);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(hopfield.getNumOfNodes());
+			out.writeLong(generation);
+			if (patterns == null) {
+				out.writeByte(DENSE);
+				for (double[] row : weightMatrix.getData()) {
+					for (double weight : row) {
+						out.writeDouble(weight);
+					}
+				}
+			} else {
+				out.writeByte(PATTERNS);
+				out.writeInt(patterns.length);
+				for (long[] pattern : patterns) {
+					PatternStore.writePacked(out, pattern);
+				}
+			}
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(temporary.toPath(), new File(directory, SNAPSHOT).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		TrainingJournal.syncDirectory(directory);
+	}
+
+	/**
+	 * List the journal generations in a directory.
+	 * @param directory directory of the journal files.
+	 * @return the generations, oldest first.
+	 */
+	private static long[] journalGenerations(File directory) {
+		File[] files = directory.listFiles();
+		long[] generations = new long[files == null ? 0 : files.length];
+		int count = 0;
+		for (int k = 0; k < generations.length; k++) {
+			long generation = TrainingJournal.generation(files[k]);
+			if (generation >= 0) {
+				generations[count++] = generation;
+			}
+		}
+		generations = Arrays.copyOf(generations, count);
+		Arrays.sort(generations);
+		return generations;
+	}
+
+	/**
+	 * <b>Record</b> is a train or forget which is in the journal,
+	 * but not applied to the network yet.
+	 */
+	private static class Record {
+		final byte op;
+		final double[] pattern;
+
+		Record(byte op, double[] pattern) {
+			this.op = op;
+			this.pattern = pattern;
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package amath383;
 
+import java.util.concurrent.ThreadLocalRandom;
+
 import amath383.DigitRecognizer.Mode;
 
 /**
@@ -7,23 +9,123 @@ import amath383.DigitRecognizer.Mode;
  * to train, and recognize input digit patterns.
  */
 public class Hopfield {
-	private Matrix weightMatrix; 
+	private static final double SIGMOID_RANGE = 16.0;  // sigmoid table covers [-16, 16)
+	private static final int SIGMOID_STEPS = 4096;  // table entries per half of the range
+	private static final double[] SIGMOID_TABLE = new double[2 * SIGMOID_STEPS];
+	static {
+		for (int k = 0; k < SIGMOID_TABLE.length; k++) {
+			double x = (k + 0.5 - SIGMOID_STEPS) * SIGMOID_RANGE / SIGMOID_STEPS;
+			SIGMOID_TABLE[k] = 1.0 / (1.0 + Math.exp(-x));
+		}
+	}
+
+	// A lazy network stays pattern-backed while
+	// LAZY_COST_FACTOR * (# of patterns) < (# of nodes).
+	private static final int LAZY_COST_FACTOR = 2;
+
+	private final int numOfNodes;
+	private final boolean lazy;
+	private Matrix weightMatrix;  // null while pattern-backed
+	private PatternStore patternStore;  // null while dense
+	private RecallTracer tracer;  // null if not tracing
 	
 	/**
 	 * Constructor to create a hopfield object with a weight matrix.
 	 * @param numOfNodes number of nodes. 
 	 */
 	public Hopfield(int numOfNodes) {
-		weightMatrix = new Matrix(numOfNodes, numOfNodes);
+		this(numOfNodes, false);
+	}
+
+	/**
+	 * Constructor to create a hopfield object.
+	 * A lazy hopfield object only stores the trained patterns, and computes
+	 * net inputs from them, until there are too many patterns for that to be
+	 * cheaper than a weight matrix.
+	 * @param numOfNodes number of nodes.
+	 * @param lazy true to start with stored patterns instead of a weight matrix.
+	 */
+	public Hopfield(int numOfNodes, boolean lazy) {
+		this.numOfNodes = numOfNodes;
+		this.lazy = lazy;
+		clear();
+	}
+
+	/**
+	 * Constructor to create a hopfield object with a given weight matrix.
+	 * @param weightMatrix weight matrix, n x n.
+	 */
+	public Hopfield(Matrix weightMatrix) {
+		this.numOfNodes = weightMatrix.getData().length;
+		this.lazy = false;
+		if (weightMatrix.getData()[0].length != numOfNodes) {
+			throw new IllegalArgumentException("weight matrix must be square");
+		}
+		this.weightMatrix = weightMatrix;
+	}
+
+	/**
+	 * @return number of nodes.
+	 */
+	public int getNumOfNodes() {
+		return numOfNodes;
 	}
 	
 	/**
 	 * Get the weight matrix.
-	 * @return the weight matrix.
+	 * @return the weight matrix, a new copy built from the stored patterns
+	 * 		   if this hopfield is pattern-backed.
 	 */
 	public Matrix getWeightMatrix() { 
+		if (patternStore != null) {
+			return patternStore.toMatrix();
+		}
 		return weightMatrix; 
 	}
+
+	/**
+	 * @return true if net inputs are computed from the stored patterns.
+	 */
+	public boolean isPatternBacked() {
+		return patternStore != null;
+	}
+
+	/**
+	 * Get the stored patterns of a pattern-backed hopfield.
+	 * @return the packed patterns, null if not pattern-backed.
+	 */
+	long[][] getStoredPatterns() {
+		return patternStore == null ? null : patternStore.getPatterns();
+	}
+
+	/**
+	 * Quantize the weight matrix for low precision recall.
+	 * @param scheme quantization scheme.
+	 * @return the quantized weights.
+	 */
+	public QuantizedWeights quantize(QuantizedWeights.Scheme scheme) {
+		return new QuantizedWeights(getWeightMatrix(), scheme);
+	}
+
+	/**
+	 * Record training and recalls with a tracer.
+	 * @param tracer tracer, null to stop tracing.
+	 */
+	public void setTracer(RecallTracer tracer) {
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Forget everything trained so far.
+	 */
+	public void clear() {
+		if (lazy) {
+			weightMatrix = null;
+			patternStore = new PatternStore(numOfNodes);
+		} else {
+			weightMatrix = new Matrix(numOfNodes, numOfNodes);
+		}
+	}
 	
 	/**
 	 * Train an input digit pattern.
@@ -33,6 +135,25 @@ public class Hopfield {
 	public void train(double[] inputDigitPattern) throws Exception {
 		// Transform input digit pattern to a bipolar pattern.
 		double[] bipolarInput = toBipolar(inputDigitPattern);
+		if (tracer != null) {
+			tracer.train(bipolarInput);
+		}
+
+		// Store the pattern if pattern-backed, switching to a weight matrix
+		// once that is cheaper.
+		if (patternStore != null) {
+			patternStore.add(bipolarInput);
+			if (DigitRecognizer.mode == Mode.SHOW_MATH) {
+				System.out.println("#-- train --#");
+				System.out.println("Stored pattern " + patternStore.size() + ":\n"
+						+ Matrix.toRowMatrix(bipolarInput));
+			}
+			if (LAZY_COST_FACTOR * patternStore.size() >= numOfNodes) {
+				weightMatrix = patternStore.toMatrix();
+				patternStore = null;
+			}
+			return;
+		}
 		// Build bipolar input as a matrix.
 		Matrix bipolarMatrix = Matrix.toRowMatrix(bipolarInput); 
 		// Transpose the bipolar matrix: (bipolar matrix)^T.
@@ -40,7 +161,7 @@ public class Hopfield {
 		// (Transposed bipolar matrix) x (bipolar matrix).
 		Matrix crossProductMatrix = transposedBipolarMatrix.multiply(bipolarMatrix);
 		// Trained matrix = (3) - (Identity Matrix).
-		Matrix trainedMatrix = crossProductMatrix.subtract(Matrix.identity(weightMatrix.getData().length));
+		Matrix trainedMatrix = crossProductMatrix.subtract(Matrix.identity(numOfNodes));
 		
 		// Show mathematical process for getting trained matrix if mode = SHOW_MATH.
 		if (DigitRecognizer.mode == Mode.SHOW_MATH) {
@@ -64,29 +185,56 @@ public class Hopfield {
 		}
 	}
 	
+	/**
+	 * Forget a trained digit pattern, undoing what train did for it.
+	 * @param inputDigitPattern input digit pattern.
+	 * @throws Exception
+	 */
+	public void forget(double[] inputDigitPattern) throws Exception {
+		// Transform input digit pattern to a bipolar pattern.
+		double[] bipolarInput = toBipolar(inputDigitPattern);
+
+		// Remove the pattern if pattern-backed. A pattern which was never
+		// stored can only be subtracted from a weight matrix.
+		if (patternStore != null) {
+			if (patternStore.remove(bipolarInput)) {
+				return;
+			}
+			weightMatrix = patternStore.toMatrix();
+			patternStore = null;
+		}
+
+		// Weight matrix = (Current Weight Matrix) - (Trained Matrix).
+		Matrix bipolarMatrix = Matrix.toRowMatrix(bipolarInput);
+		Matrix trainedMatrix = bipolarMatrix.transpose().multiply(bipolarMatrix)
+				.subtract(Matrix.identity(numOfNodes));
+		weightMatrix = weightMatrix.subtract(trainedMatrix);
+	}
+	
     //RecallPattern
     public double[] updateAsyn(double[] inputDigitPattern){
 		// Transform the input digit pattern to a bipolar pattern.
 		double[] bipolarInput = toBipolar(inputDigitPattern);
-		// weight matrix
-        double[][] w = weightMatrix.getData();
         // value matrix
         double[] v = bipolarInput;
+        double[] overlaps = overlaps(v);
+        if (tracer != null) {
+            tracer.beginRecall(RecallTracer.ASYN, v);
+        }
         boolean doWhile=true;
         int iteration=1;
-        int n = w.length;
+        int n = numOfNodes;
 
         //Recalling
         while (doWhile) {
             int stateChange = 0;
-            System.out.println("----\nRecall of " + iteration + "-th state,");
+            if (DigitRecognizer.mode == Mode.SHOW_MATH) {
+                System.out.println("----\nRecall of " + iteration + "-th state,");
+            }
             for (int i = 0; i < n; i++) {
-                int v_new = 0, net = 0;
+                int v_new = 0;
                 //Calculate each net[i]
-                for (int j = 0; j < n; j++) {
-                	//w[i][j]*v[j]
-                    net += w[i][j] * v[j];
-                }
+                double net = netInput(i, v, overlaps);
                 //Next state of v[i]
                 if (net >= 0) {
                     v_new = 1;
@@ -97,10 +245,15 @@ public class Hopfield {
 
                 if (v_new != v[i]) {
                     stateChange++;
-                    v[i] = v_new;
+                    setState(v, i, v_new, overlaps);
                 }
             }
-            System.out.println("Energy:" + EnergyFunction(v) + "\n----");
+            if (DigitRecognizer.mode == Mode.SHOW_MATH) {
+                System.out.println("Energy:" + EnergyFunction(v, overlaps) + "\n----");
+            }
+            if (tracer != null) {
+                tracer.step(0, EnergyFunction(v, overlaps));
+            }
             
             //if Converge(stable)?
             if (stateChange == 0) {
@@ -110,13 +263,152 @@ public class Hopfield {
         }
         return v;
     }
-    
+
+	/**
+	 * Recall an input digit pattern with Glauber dynamics.
+	 * Each node is set to 1 with probability sigmoid(2 * net / T), where the
+	 * temperature T follows the annealing schedule, so recall can climb out of
+	 * spurious minima. After the schedule, nodes are updated deterministically
+	 * until the network is stable.
+	 * @param inputDigitPattern input digit pattern.
+	 * @param schedule annealing schedule.
+	 * @return an output pattern.
+	 */
+	public double[] updateStochastic(double[] inputDigitPattern, AnnealingSchedule schedule) {
+		// Transform the input digit pattern to a bipolar pattern.
+		double[] v = toBipolar(inputDigitPattern);
+		double[] overlaps = overlaps(v);
+		int n = numOfNodes;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (tracer != null) {
+			tracer.beginRecall(RecallTracer.STOCHASTIC, v);
+		}
+
+		// Annealing sweeps.
+		for (int sweep = 0; sweep < schedule.sweeps(); sweep++) {
+			double temperature = schedule.temperature(sweep);
+			if (temperature <= 0) {
+				break;
+			}
+			// Scale from net input to the sigmoid table index.
+			double scale = 2 * SIGMOID_STEPS / (temperature * SIGMOID_RANGE);
+			for (int i = 0; i < n; i++) {
+				double net = netInput(i, v, overlaps);
+				setState(v, i, random.nextDouble() < sigmoid(net * scale) ? 1.00 : -1.00, overlaps);
+			}
+
+			// Show the state after each sweep if mode = SHOW_MATH.
+			if (DigitRecognizer.mode == Mode.SHOW_MATH) {
+				System.out.println("Sweep " + sweep + ", T = " + temperature
+						+ ", Energy: " + EnergyFunction(v, overlaps));
+			}
+			if (tracer != null) {
+				tracer.step(temperature, EnergyFunction(v, overlaps));
+			}
+		}
+
+		// Deterministic updates at T = 0 until stable.
+		int stateChange = n;
+		while (stateChange > 0) {
+			stateChange = 0;
+			for (int i = 0; i < n; i++) {
+				double v_new = netInput(i, v, overlaps) >= 0 ? 1.00 : -1.00;
+				if (v_new != v[i]) {
+					stateChange++;
+					setState(v, i, v_new, overlaps);
+				}
+			}
+			if (tracer != null) {
+				tracer.step(0, EnergyFunction(v, overlaps));
+			}
+		}
+		return fromBipolar(v);
+	}
+
+	/**
+	 * Overlaps of a bipolar state with the stored patterns.
+	 * @param v bipolar state a recall starts from.
+	 * @return the overlaps if pattern-backed, null otherwise.
+	 */
+	private double[] overlaps(double[] v) {
+		return patternStore == null ? null : patternStore.overlaps(v);
+	}
+
+	/**
+	 * Net input of a node, recorded by the tracer if any.
+	 * @param i node.
+	 * @param v current state.
+	 * @param overlaps overlaps of v, null if not pattern-backed.
+	 * @return sum of w[i][j] * v[j].
+	 */
+	private double netInput(int i, double[] v, double[] overlaps) {
+		double net = untracedNetInput(i, v, overlaps);
+		if (tracer != null) {
+			tracer.net(i, net);
+		}
+		return net;
+	}
+
+	/**
+	 * Net input of a node.
+	 * @param i node.
+	 * @param v current state.
+	 * @param overlaps overlaps of v, null if not pattern-backed.
+	 * @return sum of w[i][j] * v[j].
+	 */
+	private double untracedNetInput(int i, double[] v, double[] overlaps) {
+		if (overlaps != null) {
+			return patternStore.netInput(i, v, overlaps);
+		}
+		double net = 0;
+		double[] row = weightMatrix.getData()[i];
+		for (int j = 0; j < row.length; j++) {
+			net += row[j] * v[j];
+		}
+		return net;
+	}
+
+	/**
+	 * Set the state of a node, keeping the overlaps up to date.
+	 * @param v current state.
+	 * @param i node.
+	 * @param value new state of the node.
+	 * @param overlaps overlaps of v, null if not pattern-backed.
+	 */
+	private void setState(double[] v, int i, double value, double[] overlaps) {
+		if (overlaps != null) {
+			patternStore.updateOverlaps(i, value - v[i], overlaps);
+		}
+		if (tracer != null && (value > 0) != (v[i] > 0)) {
+			tracer.flip(i, value);
+		}
+		v[i] = value;
+	}
+
+	/**
+	 * Look up the sigmoid 1 / (1 + e^-x) in the precomputed table.
+	 * @param index x in table steps, i.e. x * SIGMOID_STEPS / SIGMOID_RANGE.
+	 * @return the sigmoid, 0 or 1 outside of the table range.
+	 */
+	private static double sigmoid(double index) {
+		if (index <= -SIGMOID_STEPS) {
+			return 0;
+		} else if (index >= SIGMOID_STEPS) {
+			return 1;
+		}
+		return SIGMOID_TABLE[(int) (index + SIGMOID_STEPS)];
+	}
+
     /**
      * Energy function
      * @param inputDigitPattern
+     * @param overlaps overlaps of the pattern, null if not pattern-backed
      * @return
      */
-    private double EnergyFunction(double[] inputDigitPattern){
+    private double EnergyFunction(double[] inputDigitPattern, double[] overlaps){
+        if (overlaps != null) {
+            return patternStore.energy(inputDigitPattern, overlaps);
+        }
         double energy = 0;
         double[][] w = weightMatrix.getData();
         int n = w.length;
@@ -144,42 +436,66 @@ public class Hopfield {
 		double[] outputDigitPattern = new double[inputDigitPattern.length];
 		// Build the bipolar input as a matrix.
 		Matrix bipolarMatrix = Matrix.toRowMatrix(bipolarInput);
+		double[] overlaps = overlaps(bipolarInput);
+		if (tracer != null) {
+			tracer.beginRecall(RecallTracer.RECOGNIZE, bipolarInput);
+		}
 		
 		// Show mathematical process for recognizing an input digit pattern. 
 		if (DigitRecognizer.mode == Mode.SHOW_MATH) {
 			System.out.println("#-- recognize --#");
-			System.out.println("1) Weight matrix:\n" + weightMatrix.toString("N", "N"));
+			System.out.println("1) Weight matrix:\n" + getWeightMatrix().toString("N", "N"));
 			System.out.println("2) Get the bipolar matrix for input \n" + bipolarMatrix);
 			System.out.println("3) dot product bipolar matrix & each of the columns in weight matrix");
 		}
 		
 		// Updating nodes.
 		for (int i = 0; i < inputDigitPattern.length; i++) {
-			try {
-				// Create a column matrix.
-				Matrix columnMatrix = weightMatrix.getColumnMatrix(i);
-				double dotProductResult = bipolarMatrix.dotProduct(columnMatrix);
-				
-				// Show mathematical process for dot product. 
+			// (bipolar matrix) . (weight matrix column i), which is row i as the weight matrix is symmetric.
+			double dotProductResult = netInput(i, bipolarInput, overlaps);
+			
+			// Show mathematical process for dot product. 
+			if (DigitRecognizer.mode == Mode.SHOW_MATH) {
+				System.out.print("[3."+ String.format("%02d", i) +
+						"] (bipolar matrix) . (Weight matrix column "+ String.format("%02d", i)+") = ");
+			}
+			
+			// Update weights.
+			if (dotProductResult > 0) {
+				outputDigitPattern[i] = 1.00;
 				if (DigitRecognizer.mode == Mode.SHOW_MATH) {
-					System.out.print("[3."+ String.format("%02d", i) +
-							"] (bipolar matrix) . (Weight matrix column "+ String.format("%02d", i)+") = ");
+					System.out.println(" "+ dotProductResult + "  > 0  ==>  1");
 				}
-				
-				// Update weights.
-				if (dotProductResult > 0) {
-					outputDigitPattern[i] = 1.00;
-					if (DigitRecognizer.mode == Mode.SHOW_MATH) {
-						System.out.println(" "+ dotProductResult + "  > 0  ==>  1");
-					}
-				} else {
-					outputDigitPattern[i] = 0;
-					if (DigitRecognizer.mode == Mode.SHOW_MATH) {
-						System.out.println(dotProductResult + " <= 0  ==>  0");
-					}
+			} else {
+				outputDigitPattern[i] = 0;
+				if (DigitRecognizer.mode == Mode.SHOW_MATH) {
+					System.out.println(dotProductResult + " <= 0  ==>  0");
 				}
-			} catch (Exception e) {
-				e.printStackTrace();
+			}
+			if (tracer != null && (outputDigitPattern[i] > 0) != (bipolarInput[i] > 0)) {
+				tracer.flip(i, outputDigitPattern[i]);
+			}
+		}
+		if (tracer != null) {
+			double[] bipolarOutput = toBipolar(outputDigitPattern);
+			tracer.step(0, EnergyFunction(bipolarOutput, overlaps(bipolarOutput)));
+		}
+		return outputDigitPattern;
+	}
+
+	/**
+	 * Recognize an input digit pattern the same as recognize, without
+	 * showing the math or recording it with the tracer.
+	 * @param inputDigitPattern input digit pattern
+	 * @return an output pattern.
+	 */
+	double[] recognizeQuietly(double[] inputDigitPattern) {
+		double[] bipolarInput = toBipolar(inputDigitPattern);
+		double[] overlaps = overlaps(bipolarInput);
+		double[] outputDigitPattern = new double[inputDigitPattern.length];
+		for (int i = 0; i < inputDigitPattern.length; i++) {
+			if (untracedNetInput(i, bipolarInput, overlaps) > 0) {
+				outputDigitPattern[i] = 1.00;
 			}
 		}
 		return outputDigitPattern;
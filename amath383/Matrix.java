@@ -33,6 +33,17 @@ public class Matrix {
 		}
 	}
 
+	/**
+	 * create a matrix which takes over a 2d array, without copying it
+	 * @param data - the 2d array storage of matrix, not to be changed afterwards
+	 * @return a matrix backed by data
+	 */
+	static Matrix wrap(double data[][]) {
+		Matrix matrix = new Matrix(0, 0);
+		matrix.data = data;
+		return matrix;
+	}
+
 	/**
 	 * Matrix addition
 	 * @param matrix - the other matrix to be added to this
@@ -0,0 +1,224 @@
+package amath383;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * <b>PatternStore</b> keeps the trained patterns of a hopfield network
+ * packed as bits, 1 for +1 and 0 for -1, instead of the n x n weight matrix.
+ * The weight matrix is W = sum of (xi^T x xi - I) over the stored patterns xi,
+ * so the net input of node i is
+ *   net[i] = sum of xi[i] * (xi . v) - p * v[i]
+ * where the overlaps (xi . v) are counted with popcounts and then
+ * kept up to date as the state v changes.
+ */
+class PatternStore {
+	private final int numOfNodes;
+	private final int numOfWords;
+	private long[][] patterns;
+	private int size;
+
+	/**
+	 * Create an empty pattern store.
+	 * @param numOfNodes number of nodes.
+	 */
+	PatternStore(int numOfNodes) {
+		this.numOfNodes = numOfNodes;
+		this.numOfWords = (numOfNodes + 63) >>> 6;
+		this.patterns = new long[4][];
+	}
+
+	/**
+	 * @return number of stored patterns.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Store a bipolar pattern.
+	 * @param bipolarPattern bipolar pattern of numOfNodes entries.
+	 */
+	void add(double[] bipolarPattern) {
+		if (size == patterns.length) {
+			patterns = Arrays.copyOf(patterns, 2 * size);
+		}
+		patterns[size++] = pack(bipolarPattern);
+	}
+
+	/**
+	 * Get the stored patterns. The packed arrays are never changed once
+	 * stored, so they can be read after this store changes.
+	 * @return a new array of the packed patterns.
+	 */
+	long[][] getPatterns() {
+		return Arrays.copyOf(patterns, size);
+	}
+
+	/**
+	 * Remove one copy of a stored bipolar pattern.
+	 * @param bipolarPattern bipolar pattern.
+	 * @return true if the pattern was stored.
+	 */
+	boolean remove(double[] bipolarPattern) {
+		long[] packed = pack(bipolarPattern);
+		for (int mu = size - 1; mu >= 0; mu--) {
+			if (Arrays.equals(patterns[mu], packed)) {
+				patterns[mu] = patterns[--size];
+				patterns[size] = null;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Pack a bipolar pattern into bits.
+	 * @param bipolarPattern bipolar pattern.
+	 * @return bit i is set if bipolarPattern[i] > 0.
+	 */
+	static long[] pack(double[] bipolarPattern) {
+		long[] packed = new long[(bipolarPattern.length + 63) >>> 6];
+		for (int i = 0; i < bipolarPattern.length; i++) {
+			if (bipolarPattern[i] > 0) {
+				packed[i >>> 6] |= 1L << i;
+			}
+		}
+		return packed;
+	}
+
+	/**
+	 * Unpack bits into a bipolar pattern.
+	 * @param packed packed pattern.
+	 * @param bipolarPattern filled with 1 where the bit is set, -1 elsewhere.
+	 */
+	static void unpack(long[] packed, double[] bipolarPattern) {
+		for (int i = 0; i < bipolarPattern.length; i++) {
+			bipolarPattern[i] = (packed[i >>> 6] & (1L << i)) != 0 ? 1.00 : -1.00;
+		}
+	}
+
+	/**
+	 * Read a packed pattern, written by writePacked.
+	 * @param in input stream.
+	 * @param numOfBits number of bits in the pattern.
+	 * @return the packed pattern.
+	 * @throws IOException
+	 */
+	static long[] readPacked(DataInputStream in, int numOfBits) throws IOException {
+		long[] packed = new long[(numOfBits + 63) >>> 6];
+		for (int k = 0; k < packed.length; k++) {
+			packed[k] = in.readLong();
+		}
+		return packed;
+	}
+
+	/**
+	 * Write a packed pattern.
+	 * @param out output stream.
+	 * @param packed packed pattern.
+	 * @throws IOException
+	 */
+	static void writePacked(DataOutputStream out, long[] packed) throws IOException {
+		for (long word : packed) {
+			out.writeLong(word);
+		}
+	}
+
+	/**
+	 * Overlaps of a bipolar state with every stored pattern.
+	 * @precon every entry of bipolarState is 1 or -1
+	 * @param bipolarState bipolar state.
+	 * @return (xi . v) for each stored pattern xi.
+	 */
+	double[] overlaps(double[] bipolarState) {
+		long[] packed = pack(bipolarState);
+		double[] overlaps = new double[size];
+		for (int mu = 0; mu < size; mu++) {
+			long[] pattern = patterns[mu];
+			int differences = 0;
+			for (int k = 0; k < numOfWords; k++) {
+				differences += Long.bitCount(pattern[k] ^ packed[k]);
+			}
+			overlaps[mu] = numOfNodes - 2 * differences;
+		}
+		return overlaps;
+	}
+
+	/**
+	 * Net input of node i.
+	 * @param i node.
+	 * @param v current state.
+	 * @param overlaps overlaps of v with the stored patterns.
+	 * @return sum of W[i][j] * v[j].
+	 */
+	double netInput(int i, double[] v, double[] overlaps) {
+		int word = i >>> 6;
+		double net = -size * v[i];
+		for (int mu = 0; mu < size; mu++) {
+			if ((patterns[mu][word] & (1L << i)) != 0) {
+				net += overlaps[mu];
+			} else {
+				net -= overlaps[mu];
+			}
+		}
+		return net;
+	}
+
+	/**
+	 * Update the overlaps after node i changed its state.
+	 * @param i node.
+	 * @param delta new state of node i - old state of node i.
+	 * @param overlaps overlaps to update.
+	 */
+	void updateOverlaps(int i, double delta, double[] overlaps) {
+		int word = i >>> 6;
+		for (int mu = 0; mu < size; mu++) {
+			if ((patterns[mu][word] & (1L << i)) != 0) {
+				overlaps[mu] += delta;
+			} else {
+				overlaps[mu] -= delta;
+			}
+		}
+	}
+
+	/**
+	 * Energy of a state.
+	 * @param v state.
+	 * @param overlaps overlaps of v with the stored patterns.
+	 * @return -0.5 * sum of W[a][b] * v[a] * v[b].
+	 */
+	double energy(double[] v, double[] overlaps) {
+		double energy = 0;
+		for (int mu = 0; mu < size; mu++) {
+			energy += overlaps[mu] * overlaps[mu];
+		}
+		for (int a = 0; a < numOfNodes; a++) {
+			energy -= size * v[a] * v[a];
+		}
+		return (-0.5) * energy;
+	}
+
+	/**
+	 * Build the weight matrix of the stored patterns.
+	 * @return a new n x n weight matrix.
+	 */
+	Matrix toMatrix() {
+		double[][] w = new double[numOfNodes][numOfNodes];
+		for (int mu = 0; mu < size; mu++) {
+			long[] pattern = patterns[mu];
+			for (int a = 0; a < numOfNodes; a++) {
+				boolean bitA = (pattern[a >>> 6] & (1L << a)) != 0;
+				for (int b = 0; b < numOfNodes; b++) {
+					if (a != b) {
+						boolean bitB = (pattern[b >>> 6] & (1L << b)) != 0;
+						w[a][b] += bitA == bitB ? 1 : -1;
+					}
+				}
+			}
+		}
+		return Matrix.wrap(w);
+	}
+}
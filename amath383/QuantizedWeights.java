@@ -0,0 +1,203 @@
+package amath383;
+
+import java.util.Arrays;
+
+/**
+ * <b>QuantizedWeights</b> is a low precision copy of a trained weight matrix
+ * for recall: one byte per weight instead of a double, so recall reads
+ * 8 times less memory. Each row i keeps a scale, and
+ *   w[i][j] ~ scale[i] * q[i][j]
+ * where q is either an int8 in [-127, 127] (INT8), or the sign of the
+ * weight in {-1, 0, 1} (TERNARY). Net inputs are summed as integers, and since
+ * the scales are positive the sign of the sum is enough to update a node.
+ */
+public class QuantizedWeights {
+	/**
+	 * INT8 - round w[i][j] / scale[i], with scale[i] = max |w[i][j]| / 127,
+	 * 		  or 1 if the row is whole numbers up to 127, as trained rows are
+	 * TERNARY - sign of w[i][j], with scale[i] = mean of the non-zero |w[i][j]|
+	 */
+	public enum Scheme {
+		INT8,
+		TERNARY
+	};
+
+	private final Scheme scheme;
+	private final int numOfNodes;
+	private final byte[][] weights;  // q[i][j]
+	private final double[] scales;
+	private final double maxError;
+
+	/**
+	 * Quantize a weight matrix.
+	 * @param weightMatrix weight matrix, n x n.
+	 * @param scheme quantization scheme.
+	 */
+	public QuantizedWeights(Matrix weightMatrix, Scheme scheme) {
+		double[][] w = weightMatrix.getData();
+		this.scheme = scheme;
+		this.numOfNodes = w.length;
+		this.weights = new byte[numOfNodes][numOfNodes];
+		this.scales = new double[numOfNodes];
+		double maxError = 0;
+		for (int i = 0; i < numOfNodes; i++) {
+			double[] row = w[i];
+
+			// Scale of the row.
+			double max = 0, sum = 0;
+			int nonZero = 0;
+			boolean whole = true;
+			for (int j = 0; j < numOfNodes; j++) {
+				double magnitude = Math.abs(row[j]);
+				max = Math.max(max, magnitude);
+				whole &= magnitude == Math.rint(magnitude);
+				if (magnitude > 0) {
+					sum += magnitude;
+					nonZero++;
+				}
+			}
+			double scale;
+			if (scheme == Scheme.INT8) {
+				scale = whole && max > 0 && max <= 127 ? 1 : max / 127;
+			} else {
+				scale = nonZero > 0 ? sum / nonZero : 0;
+			}
+			scales[i] = scale;
+
+			// Quantized weights of the row.
+			byte[] quantizedRow = weights[i];
+			for (int j = 0; j < numOfNodes; j++) {
+				int q;
+				if (scale == 0) {
+					q = 0;
+				} else if (scheme == Scheme.INT8) {
+					q = (int) Math.round(row[j] / scale);
+				} else {
+					q = (int) Math.signum(row[j]);
+				}
+				quantizedRow[j] = (byte) q;
+				maxError = Math.max(maxError, Math.abs(row[j] - q * scale));
+			}
+		}
+		this.maxError = maxError;
+	}
+
+	/**
+	 * @return the quantization scheme.
+	 */
+	public Scheme getScheme() {
+		return scheme;
+	}
+
+	/**
+	 * Get the error bound of the quantization.
+	 * @return max |w[i][j] - scale[i] * q[i][j]|.
+	 */
+	public double getMaxError() {
+		return maxError;
+	}
+
+	/**
+	 * Net input of a node, in units of the node's scale.
+	 * @param i node.
+	 * @param state bipolar state, 1 or -1 for each node.
+	 * @return sum of q[i][j] * state[j].
+	 */
+	private long netInput(int i, byte[] state) {
+		byte[] row = weights[i];
+		long net = 0;
+		for (int j = 0; j < numOfNodes; j++) {
+			net += row[j] * state[j];
+		}
+		return net;
+	}
+
+	/**
+	 * Recognize an input digit pattern, the same as Hopfield.recognize.
+	 * @param inputDigitPattern input digit pattern.
+	 * @return an output pattern.
+	 */
+	public double[] recognize(double[] inputDigitPattern) {
+		byte[] state = new byte[numOfNodes];
+		for (int j = 0; j < numOfNodes; j++) {
+			state[j] = (byte) (inputDigitPattern[j] == 0 ? -1 : 1);
+		}
+		double[] outputDigitPattern = new double[numOfNodes];
+		for (int i = 0; i < numOfNodes; i++) {
+			if (netInput(i, state) > 0) {
+				outputDigitPattern[i] = 1.00;
+			}
+		}
+		return outputDigitPattern;
+	}
+
+	/**
+	 * Compare recall with these weights against the full precision recall
+	 * of a hopfield network. The full precision recall neither shows the
+	 * math nor is recorded by the hopfield network's tracer.
+	 * @param hopfield hopfield network these weights were quantized from.
+	 * @param probes input digit patterns to recall.
+	 * @param targets pattern each probe should be recalled as.
+	 * @return the comparison.
+	 */
+	public Evaluation evaluate(Hopfield hopfield, double[][] probes, double[][] targets) {
+		int fullCorrect = 0, quantizedCorrect = 0, sameOutput = 0;
+		long sameNodes = 0;
+		for (int p = 0; p < probes.length; p++) {
+			double[] full = hopfield.recognizeQuietly(probes[p]);
+			double[] quantized = recognize(probes[p]);
+			if (Arrays.equals(full, targets[p])) {
+				fullCorrect++;
+			}
+			if (Arrays.equals(quantized, targets[p])) {
+				quantizedCorrect++;
+			}
+			if (Arrays.equals(full, quantized)) {
+				sameOutput++;
+			}
+			for (int i = 0; i < numOfNodes; i++) {
+				if (full[i] == quantized[i]) {
+					sameNodes++;
+				}
+			}
+		}
+		return new Evaluation(probes.length, fullCorrect, quantizedCorrect, sameOutput,
+				probes.length == 0 ? 1 : (double) sameNodes / ((long) probes.length * numOfNodes));
+	}
+
+	/**
+	 * <b>Evaluation</b> is how recall with quantized weights compares
+	 * to recall with the full precision weights.
+	 */
+	public static class Evaluation {
+		public final int numOfProbes;
+		public final int fullCorrect;  // probes recalled as their target at full precision
+		public final int quantizedCorrect;  // probes recalled as their target when quantized
+		public final int sameOutput;  // probes with the same output both ways
+		public final double sameNodes;  // fraction of output nodes which are the same both ways
+
+		Evaluation(int numOfProbes, int fullCorrect, int quantizedCorrect, int sameOutput, double sameNodes) {
+			this.numOfProbes = numOfProbes;
+			this.fullCorrect = fullCorrect;
+			this.quantizedCorrect = quantizedCorrect;
+			this.sameOutput = sameOutput;
+			this.sameNodes = sameNodes;
+		}
+
+		/**
+		 * @return accuracy lost by quantizing, as a fraction of the probes.
+		 */
+		public double accuracyLoss() {
+			return numOfProbes == 0 ? 0 : (double) (fullCorrect - quantizedCorrect) / numOfProbes;
+		}
+
+		@Override
+		public String toString() {
+			return "full precision: " + fullCorrect + "/" + numOfProbes + " recalled\n"
+					+ "quantized:      " + quantizedCorrect + "/" + numOfProbes + " recalled\n"
+					+ "accuracy loss:  " + String.format("%.2f%%", 100 * accuracyLoss()) + "\n"
+					+ "same output:    " + sameOutput + "/" + numOfProbes + " probes, "
+					+ String.format("%.2f%%", 100 * sameNodes) + " of nodes";
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package amath383;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * <b>RecallTracer</b> records what a hopfield network does while it trains
+ * and recalls, as compact binary records instead of the text of SHOW_MATH.
+ * Records are put in a ring of buffers, and a writer thread appends the
+ * full buffers to the trace file, so recording costs no string formatting
+ * and no file writes on the recalling thread. {@link TraceViewer} prints
+ * the math back from the file.
+ *
+ * A tracer records one recall at a time, from one thread at a time.
+ *
+ * File format, big-endian:
+ *   header: int MAGIC
+ *   TRAIN   byte tag, int n, packed bipolar pattern as (n + 63) / 64 longs
+ *   RECALL  byte tag, byte kind, int n, packed bipolar input
+ *   NET     byte tag, int node, double (net input - last net input of the node)
+ *   FLIP    byte tag, int node, byte new state (1 or 0)
+ *   STEP    byte tag, int flips, double temperature (0 if deterministic), double energy
+ */
+public class RecallTracer implements Closeable {
+	static final int MAGIC = 0x48545243;  // "HTRC"
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+	public static final int DEFAULT_NUM_OF_BUFFERS = 4;
+
+	// Record tags.
+	static final byte TRAIN = 1;
+	static final byte RECALL = 2;
+	static final byte NET = 3;
+	static final byte FLIP = 4;
+	static final byte STEP = 5;
+	// Recall kinds.
+	static final byte RECOGNIZE = 0;
+	static final byte ASYN = 1;
+	static final byte STOCHASTIC = 2;
+
+	private static final int MAX_RECORD_SIZE = 1 + 4 + 8 + 8;
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	private final FileChannel channel;
+	private final BlockingQueue<ByteBuffer> free;
+	private final BlockingQueue<ByteBuffer> full;
+	private final Thread writer;
+	private ByteBuffer current;
+	private double[] lastNet = new double[0];
+	private int flips;
+	private volatile IOException failure;
+	private boolean closed;  // no more records are taken
+
+	/**
+	 * Create a tracer writing to a file, with default buffers.
+	 * @param file trace file, overwritten.
+	 * @throws IOException
+	 */
+	public RecallTracer(File file) throws IOException {
+		this(file, DEFAULT_BUFFER_SIZE, DEFAULT_NUM_OF_BUFFERS);
+	}
+
+	/**
+	 * Create a tracer writing to a file.
+	 * Recording waits for the writer once all buffers are full.
+	 * @param file trace file, overwritten.
+	 * @param bufferSize size of each buffer in bytes.
+	 * @param numOfBuffers number of buffers in the ring, at least 2.
+	 * @throws IOException
+	 */
+	public RecallTracer(File file, int bufferSize, int numOfBuffers) throws IOException {
+		if (bufferSize < MAX_RECORD_SIZE || numOfBuffers < 2) {
+			throw new IllegalArgumentException("need bufferSize >= " + MAX_RECORD_SIZE
+					+ " and numOfBuffers >= 2");
+		}
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		free = new ArrayBlockingQueue<ByteBuffer>(numOfBuffers);
+		full = new ArrayBlockingQueue<ByteBuffer>(numOfBuffers + 1);
+		for (int k = 1; k < numOfBuffers; k++) {
+			free.add(ByteBuffer.allocateDirect(bufferSize));
+		}
+		current = ByteBuffer.allocateDirect(bufferSize);
+		current.putInt(MAGIC);
+		writer = new Thread(this::write, "trace-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Record a trained pattern.
+	 * @param bipolarPattern bipolar pattern.
+	 */
+	public void train(double[] bipolarPattern) {
+		if (reserve(1 + 4)) {
+			current.put(TRAIN).putInt(bipolarPattern.length);
+			putPacked(bipolarPattern);
+		}
+	}
+
+	/**
+	 * Record the start of a recall.
+	 * @param kind RECOGNIZE, ASYN or STOCHASTIC.
+	 * @param bipolarInput bipolar input.
+	 */
+	public void beginRecall(byte kind, double[] bipolarInput) {
+		if (lastNet.length != bipolarInput.length) {
+			lastNet = new double[bipolarInput.length];
+		} else {
+			Arrays.fill(lastNet, 0);
+		}
+		flips = 0;
+		if (reserve(1 + 1 + 4)) {
+			current.put(RECALL).put(kind).putInt(bipolarInput.length);
+			putPacked(bipolarInput);
+		}
+	}
+
+	/**
+	 * Record the net input of a node, if it changed since the node's last one.
+	 * @param node node.
+	 * @param net net input.
+	 */
+	public void net(int node, double net) {
+		double delta = net - lastNet[node];
+		if (delta != 0 && reserve(1 + 4 + 8)) {
+			lastNet[node] = net;
+			current.put(NET).putInt(node).putDouble(delta);
+		}
+	}
+
+	/**
+	 * Record a node changing its state.
+	 * @param node node.
+	 * @param value new state, 1 if > 0 and 0 otherwise.
+	 */
+	public void flip(int node, double value) {
+		flips++;
+		if (reserve(1 + 4 + 1)) {
+			current.put(FLIP).putInt(node).put((byte) (value > 0 ? 1 : 0));
+		}
+	}
+
+	/**
+	 * Record the end of a step of a recall.
+	 * @param temperature temperature of the step, 0 if deterministic.
+	 * @param energy energy after the step.
+	 */
+	public void step(double temperature, double energy) {
+		if (reserve(1 + 4 + 8 + 8)) {
+			current.put(STEP).putInt(flips).putDouble(temperature).putDouble(energy);
+		}
+		flips = 0;
+	}
+
+	/**
+	 * Write the records so far and close the trace file.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel.isOpen()) {
+			closed = true;
+			try {
+				if (current != null) {
+					current.flip();
+					full.put(current);
+					current = null;
+				}
+				full.put(END);
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			channel.close();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Make room in the current buffer, handing it to the writer if it is full.
+	 * @param bytes room needed, at most MAX_RECORD_SIZE.
+	 * @return false if the tracer is closed and the record must be dropped.
+	 */
+	private boolean reserve(int bytes) {
+		if (closed) {
+			return false;
+		}
+		if (current.remaining() < bytes) {
+			try {
+				current.flip();
+				full.put(current);
+				current = free.take();
+			} catch (InterruptedException e) {
+				// Stop recording, dropping the current buffer.
+				Thread.currentThread().interrupt();
+				current = null;
+				closed = true;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Put a bipolar pattern packed as bits, one long at a time.
+	 * @param bipolarPattern bipolar pattern.
+	 */
+	private void putPacked(double[] bipolarPattern) {
+		for (long word : PatternStore.pack(bipolarPattern)) {
+			if (!reserve(8)) {
+				return;
+			}
+			current.putLong(word);
+		}
+	}
+
+	/**
+	 * Writer loop: append full buffers to the file and give them back.
+	 */
+	private void write() {
+		try {
+			while (true) {
+				ByteBuffer buffer = full.take();
+				if (buffer == END) {
+					return;
+				}
+				try {
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+				} catch (IOException e) {
+					failure = e;
+				}
+				buffer.clear();
+				free.put(buffer);
+			}
+		} catch (InterruptedException e) {
+			// Stop writing.
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package amath383;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * <b>ShardServer</b> holds a slice of the rows of a hopfield weight matrix
+ * for a {@link ShardedHopfield}, and answers its requests over TCP.
+ *
+ * Every request is one request code byte followed by its arguments,
+ * written as big-endian ints and longs; states and patterns are sent
+ * packed as bits, 1 for +1 and 0 for -1.
+ *   INIT  int numOfNodes, int firstRow, int lastRow        -> OK
+ *   TRAIN int count, count packed patterns                  -> OK
+ *   STEP  int count, count packed states   -> count packed next states
+ *                                             of rows firstRow..lastRow-1
+ *   CLEAR                                                   -> OK
+ *   CLOSE
+ * TRAIN, STEP and CLEAR need an INIT first. A network has at most MAX_NODES
+ * nodes, and a batch holds at most maxBatch(numOfNodes) patterns or states.
+ * A malformed request closes the connection.
+ *
+ * Usage: java amath383.ShardServer [port]
+ */
+public class ShardServer {
+	public static final int DEFAULT_PORT = 7383;
+
+	// Request codes.
+	static final byte CLOSE = 0;
+	static final byte INIT = 1;
+	static final byte TRAIN = 2;
+	static final byte STEP = 3;
+	static final byte CLEAR = 4;
+	// Reply code of INIT, TRAIN, CLEAR.
+	static final byte OK = 0;
+	// Most patterns or states in one TRAIN or STEP request.
+	static final int MAX_BATCH = 1 << 12;
+	// Most bytes of packed patterns or states in one TRAIN or STEP request.
+	static final int MAX_BATCH_BYTES = 1 << 24;
+	// Most nodes, so that one packed state fits in a request.
+	static final int MAX_NODES = 8 * MAX_BATCH_BYTES;
+
+	private int numOfNodes;
+	private int firstRow;
+	private double[][] rows;  // rows firstRow..lastRow-1 of the weight matrix, null before INIT
+	private double[] state;  // bipolar state of a STEP
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		ShardServer shard = new ShardServer();
+		try (ServerSocket serverSocket = new ServerSocket(port)) {
+			System.out.println("> Shard listening on port " + serverSocket.getLocalPort());
+			while (true) {
+				try (Socket socket = serverSocket.accept()) {
+					shard.serve(socket);
+				} catch (IOException | RuntimeException e) {
+					// Drop this connection only, and keep serving.
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Answer the requests of one client until it closes the connection.
+	 * @param socket connection to the client.
+	 * @throws IOException if the connection fails or a request is malformed.
+	 */
+	public void serve(Socket socket) throws IOException {
+		socket.setTcpNoDelay(true);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		while (true) {
+			int request = in.read();
+			switch (request) {
+				case -1:
+				case CLOSE:
+					return;
+				case INIT:
+					int newNumOfNodes = in.readInt();
+					int newFirstRow = in.readInt();
+					int newLastRow = in.readInt();
+					if (newNumOfNodes <= 0 || newNumOfNodes > MAX_NODES || newFirstRow < 0 || newFirstRow > newLastRow
+							|| newLastRow > newNumOfNodes) {
+						throw new IOException("bad INIT: " + newNumOfNodes + " nodes, rows "
+								+ newFirstRow + ".." + newLastRow);
+					}
+					numOfNodes = newNumOfNodes;
+					firstRow = newFirstRow;
+					try {
+						rows = null;
+						state = new double[numOfNodes];
+						rows = new double[newLastRow - newFirstRow][numOfNodes];
+					} catch (OutOfMemoryError e) {
+						rows = null;
+						state = null;
+						throw new IOException("not enough memory for rows "
+								+ newFirstRow + ".." + newLastRow);
+					}
+					out.writeByte(OK);
+					break;
+				case TRAIN:
+					checkInit();
+					for (int count = readCount(in); count > 0; count--) {
+						train(PatternStore.readPacked(in, numOfNodes));
+					}
+					out.writeByte(OK);
+					break;
+				case STEP:
+					checkInit();
+					// Read the whole batch before answering, so the client
+					// can send it to every shard without reading in between.
+					long[][] states = new long[readCount(in)][];
+					for (int p = 0; p < states.length; p++) {
+						states[p] = PatternStore.readPacked(in, numOfNodes);
+					}
+					for (long[] packed : states) {
+						PatternStore.unpack(packed, state);
+						PatternStore.writePacked(out, step(state));
+					}
+					break;
+				case CLEAR:
+					checkInit();
+					rows = new double[rows.length][numOfNodes];
+					out.writeByte(OK);
+					break;
+				default:
+					throw new IOException("unknown request " + request);
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * @throws IOException if there was no INIT yet.
+	 */
+	private void checkInit() throws IOException {
+		if (rows == null) {
+			throw new IOException("request before INIT");
+		}
+	}
+
+	/**
+	 * Most patterns or states in one TRAIN or STEP request of a network.
+	 * @param numOfNodes number of nodes, at most MAX_NODES.
+	 * @return MAX_BATCH, or fewer so that the batch fits in MAX_BATCH_BYTES.
+	 */
+	static int maxBatch(int numOfNodes) {
+		int bytesPerPattern = 8 * ((numOfNodes + 63) >>> 6);
+		return Math.max(1, Math.min(MAX_BATCH, MAX_BATCH_BYTES / bytesPerPattern));
+	}
+
+	/**
+	 * Read the batch size of a TRAIN or STEP request.
+	 * @param in input stream.
+	 * @return the batch size.
+	 * @throws IOException if it is not in 0..maxBatch(numOfNodes).
+	 */
+	private int readCount(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > maxBatch(numOfNodes)) {
+			throw new IOException("bad batch size " + count);
+		}
+		return count;
+	}
+
+	/**
+	 * Add a packed pattern to the rows of this shard,
+	 * the same as Hopfield.train does to the whole weight matrix.
+	 * @param pattern packed pattern.
+	 */
+	private void train(long[] pattern) {
+		for (int r = 0; r < rows.length; r++) {
+			int i = firstRow + r;
+			boolean bitI = (pattern[i >>> 6] & (1L << i)) != 0;
+			double[] row = rows[r];
+			for (int j = 0; j < numOfNodes; j++) {
+				if (j != i) {
+					boolean bitJ = (pattern[j >>> 6] & (1L << j)) != 0;
+					row[j] += bitI == bitJ ? 1 : -1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Next state of the nodes of this shard,
+	 * the same as Hopfield.recognize computes for the whole network.
+	 * @param v bipolar state.
+	 * @return bit r is set if net input of node firstRow + r > 0.
+	 */
+	private long[] step(double[] v) {
+		long[] next = new long[(rows.length + 63) >>> 6];
+		for (int r = 0; r < rows.length; r++) {
+			double[] row = rows[r];
+			double net = 0;
+			for (int j = 0; j < numOfNodes; j++) {
+				net += row[j] * v[j];
+			}
+			if (net > 0) {
+				next[r >>> 6] |= 1L << r;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Read the reply of INIT, TRAIN or CLEAR.
+	 * @param in input stream.
+	 * @throws IOException if the reply is not OK.
+	 */
+	static void readOk(DataInputStream in) throws IOException {
+		int reply = in.read();
+		if (reply == -1) {
+			throw new EOFException("shard closed the connection");
+		} else if (reply != OK) {
+			throw new IOException("unexpected reply " + reply);
+		}
+	}
+}
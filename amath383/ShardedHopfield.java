@@ -0,0 +1,334 @@
+package amath383;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <b>ShardedHopfield</b> is a hopfield network whose weight matrix is split
+ * by rows across {@link ShardServer} processes, so it does not need to fit
+ * in the memory of one machine.
+ * Each recall step sends the packed state to every shard, and each shard
+ * answers with the next state of its own nodes. Probes are sent in batches,
+ * so a step costs one round trip per shard however many probes there are.
+ *
+ * Usage: java amath383.ShardedHopfield [# of local shards | host:port ...]
+ *   checks sharded recall against Hopfield.recognize, on shards it starts
+ *   as local JVMs (3 by default), or on running shards.
+ */
+public class ShardedHopfield implements Closeable {
+	private final int numOfNodes;
+	private final int maxBatch;
+	private final int[] firstRows;  // shard s holds rows firstRows[s]..firstRows[s + 1]-1
+	private final Socket[] sockets;
+	private final DataInputStream[] ins;
+	private final DataOutputStream[] outs;
+
+	public static void main(String[] args) throws Exception {
+		List<Process> localShards = new ArrayList<Process>();
+		try {
+			String[] shardAddresses = args;
+			if (args.length == 0 || !args[0].contains(":")) {
+				int numOfShards = args.length == 0 ? 3 : Integer.parseInt(args[0]);
+				shardAddresses = new String[numOfShards];
+				for (int s = 0; s < numOfShards; s++) {
+					shardAddresses[s] = "localhost:" + startLocalShard(localShards);
+				}
+			}
+
+			// Probes: every training pattern, and every one of them with one node flipped.
+			int numOfNodes = DigitRecognizer.TRAIN_PATTERNS[0].length();
+			double[][] patterns = new double[DigitRecognizer.TRAIN_PATTERNS.length][numOfNodes];
+			double[][] probes = new double[patterns.length * (numOfNodes + 1)][];
+			int p = 0;
+			for (int k = 0; k < patterns.length; k++) {
+				for (int i = 0; i < numOfNodes; i++) {
+					patterns[k][i] = DigitRecognizer.TRAIN_PATTERNS[k].charAt(i) == '0' ? 0 : 1;
+				}
+				for (int flipped = -1; flipped < numOfNodes; flipped++) {
+					probes[p] = patterns[k].clone();
+					if (flipped >= 0) {
+						probes[p][flipped] = 1 - probes[p][flipped];
+					}
+					p++;
+				}
+			}
+
+			Hopfield hopfield = new Hopfield(numOfNodes);
+			for (double[] pattern : patterns) {
+				hopfield.train(pattern);
+			}
+			int mismatches = 0;
+			try (ShardedHopfield sharded = new ShardedHopfield(numOfNodes, shardAddresses)) {
+				sharded.train(patterns);
+				double[][] outputs = sharded.recall(probes, 1);
+				for (p = 0; p < probes.length; p++) {
+					if (!Arrays.equals(outputs[p], hopfield.recognize(probes[p]))) {
+						mismatches++;
+					}
+				}
+			}
+			System.out.println("> " + shardAddresses.length + " shards: " + (probes.length - mismatches)
+					+ "/" + probes.length + " probes recognized the same as Hopfield.recognize");
+			if (mismatches > 0) {
+				System.exit(1);
+			}
+		} finally {
+			for (Process shard : localShards) {
+				shard.destroy();
+			}
+		}
+	}
+
+	/**
+	 * Start a ShardServer in a new local JVM, on a free port.
+	 * @param localShards list to add the shard process to.
+	 * @return the port of the shard.
+	 * @throws IOException if the shard does not start.
+	 */
+	private static int startLocalShard(List<Process> localShards) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		Process shard = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				ShardServer.class.getName(), "0")
+				.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		localShards.add(shard);
+		// The shard's first line is "> Shard listening on port N".
+		String line = new BufferedReader(new InputStreamReader(shard.getInputStream())).readLine();
+		if (line == null) {
+			throw new IOException("shard did not start");
+		}
+		return Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+	}
+
+	/**
+	 * Connect to the shards and split the weight matrix evenly between them.
+	 * The shards start with an empty weight matrix.
+	 * @param numOfNodes number of nodes.
+	 * @param shardAddresses shard addresses as "host:port".
+	 * @throws IOException if a shard cannot be reached.
+	 */
+	public ShardedHopfield(int numOfNodes, String... shardAddresses) throws IOException {
+		int numOfShards = shardAddresses.length;
+		if (numOfNodes <= 0 || numOfNodes > ShardServer.MAX_NODES) {
+			throw new IllegalArgumentException("need 1 to " + ShardServer.MAX_NODES + " nodes");
+		}
+		if (numOfShards == 0 || numOfShards > numOfNodes) {
+			throw new IllegalArgumentException("need 1 to " + numOfNodes + " shards");
+		}
+		// Parse every address before opening any connection.
+		String[] hosts = new String[numOfShards];
+		int[] ports = new int[numOfShards];
+		for (int s = 0; s < numOfShards; s++) {
+			int colon = shardAddresses[s].lastIndexOf(':');
+			try {
+				hosts[s] = shardAddresses[s].substring(0, colon);
+				ports[s] = Integer.parseInt(shardAddresses[s].substring(colon + 1));
+				if (ports[s] < 0 || ports[s] > 0xFFFF) {
+					throw new NumberFormatException();
+				}
+			} catch (IndexOutOfBoundsException | NumberFormatException e) {
+				throw new IllegalArgumentException("shard address must be host:port, not "
+						+ shardAddresses[s]);
+			}
+		}
+
+		this.numOfNodes = numOfNodes;
+		this.maxBatch = ShardServer.maxBatch(numOfNodes);
+		firstRows = new int[numOfShards + 1];
+		sockets = new Socket[numOfShards];
+		ins = new DataInputStream[numOfShards];
+		outs = new DataOutputStream[numOfShards];
+		try {
+			for (int s = 0; s < numOfShards; s++) {
+				firstRows[s + 1] = (int) ((long) numOfNodes * (s + 1) / numOfShards);
+				sockets[s] = new Socket(hosts[s], ports[s]);
+				sockets[s].setTcpNoDelay(true);
+				ins[s] = new DataInputStream(new BufferedInputStream(sockets[s].getInputStream()));
+				outs[s] = new DataOutputStream(new BufferedOutputStream(sockets[s].getOutputStream()));
+				outs[s].writeByte(ShardServer.INIT);
+				outs[s].writeInt(numOfNodes);
+				outs[s].writeInt(firstRows[s]);
+				outs[s].writeInt(firstRows[s + 1]);
+				outs[s].flush();
+			}
+			for (int s = 0; s < numOfShards; s++) {
+				ShardServer.readOk(ins[s]);
+			}
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Train an input digit pattern.
+	 * @param inputDigitPattern input digit pattern.
+	 * @throws IOException
+	 */
+	public void train(double[] inputDigitPattern) throws IOException {
+		train(new double[][] { inputDigitPattern });
+	}
+
+	/**
+	 * Train a batch of input digit patterns.
+	 * @param inputDigitPatterns input digit patterns.
+	 * @throws IOException
+	 */
+	public void train(double[][] inputDigitPatterns) throws IOException {
+		for (int start = 0; start < inputDigitPatterns.length; start += maxBatch) {
+			int count = Math.min(maxBatch, inputDigitPatterns.length - start);
+			for (DataOutputStream out : outs) {
+				out.writeByte(ShardServer.TRAIN);
+				out.writeInt(count);
+				for (int p = start; p < start + count; p++) {
+					PatternStore.writePacked(out, PatternStore.pack(Hopfield.toBipolar(inputDigitPatterns[p])));
+				}
+				out.flush();
+			}
+			for (DataInputStream in : ins) {
+				ShardServer.readOk(in);
+			}
+		}
+	}
+
+	/**
+	 * Forget everything trained so far.
+	 * @throws IOException
+	 */
+	public void clear() throws IOException {
+		for (DataOutputStream out : outs) {
+			out.writeByte(ShardServer.CLEAR);
+			out.flush();
+		}
+		for (DataInputStream in : ins) {
+			ShardServer.readOk(in);
+		}
+	}
+
+	/**
+	 * Recognize an input digit pattern, the same as Hopfield.recognize.
+	 * @param inputDigitPattern input digit pattern.
+	 * @return an output pattern.
+	 * @throws IOException
+	 */
+	public double[] recognize(double[] inputDigitPattern) throws IOException {
+		return recall(new double[][] { inputDigitPattern }, 1)[0];
+	}
+
+	/**
+	 * Recall a batch of input digit patterns by synchronous updates,
+	 * until each of them is stable or maxSteps steps are done.
+	 * @param inputDigitPatterns input digit patterns.
+	 * @param maxSteps maximum number of steps.
+	 * @return the output patterns.
+	 * @throws IOException
+	 */
+	public double[][] recall(double[][] inputDigitPatterns, int maxSteps) throws IOException {
+		long[][] states = new long[inputDigitPatterns.length][];
+		for (int p = 0; p < states.length; p++) {
+			states[p] = PatternStore.pack(Hopfield.toBipolar(inputDigitPatterns[p]));
+		}
+
+		// Indexes of the probes which are not stable yet.
+		int[] active = new int[states.length];
+		for (int p = 0; p < active.length; p++) {
+			active[p] = p;
+		}
+		int numOfActive = active.length;
+		for (int step = 0; step < maxSteps && numOfActive > 0; step++) {
+			long[][] next = step(states, active, numOfActive);
+			int stillActive = 0;
+			for (int a = 0; a < numOfActive; a++) {
+				int p = active[a];
+				if (!Arrays.equals(states[p], next[a])) {
+					states[p] = next[a];
+					active[stillActive++] = p;
+				}
+			}
+			numOfActive = stillActive;
+		}
+
+		double[][] outputDigitPatterns = new double[states.length][numOfNodes];
+		for (int p = 0; p < states.length; p++) {
+			PatternStore.unpack(states[p], outputDigitPatterns[p]);
+			outputDigitPatterns[p] = Hopfield.fromBipolar(outputDigitPatterns[p]);
+		}
+		return outputDigitPatterns;
+	}
+
+	/**
+	 * Do one synchronous step for a batch of states on all shards.
+	 * @param states packed states.
+	 * @param active indexes of the states to step.
+	 * @param numOfActive number of indexes in active.
+	 * @return the packed next states, in the order of active.
+	 * @throws IOException
+	 */
+	private long[][] step(long[][] states, int[] active, int numOfActive) throws IOException {
+		long[][] next = new long[numOfActive][(numOfNodes + 63) >>> 6];
+		for (int start = 0; start < numOfActive; start += maxBatch) {
+			int end = Math.min(numOfActive, start + maxBatch);
+
+			// Send the batch to every shard before reading any answer,
+			// so the shards work in parallel.
+			for (DataOutputStream out : outs) {
+				out.writeByte(ShardServer.STEP);
+				out.writeInt(end - start);
+				for (int a = start; a < end; a++) {
+					PatternStore.writePacked(out, states[active[a]]);
+				}
+				out.flush();
+			}
+
+			for (int s = 0; s < ins.length; s++) {
+				int firstRow = firstRows[s];
+				int numOfRows = firstRows[s + 1] - firstRow;
+				for (int a = start; a < end; a++) {
+					long[] slice = PatternStore.readPacked(ins[s], numOfRows);
+					for (int r = 0; r < numOfRows; r++) {
+						if ((slice[r >>> 6] & (1L << r)) != 0) {
+							int i = firstRow + r;
+							next[a][i >>> 6] |= 1L << i;
+						}
+					}
+				}
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Close the connections to the shards. The shards keep running.
+	 */
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		for (int s = 0; s < sockets.length; s++) {
+			if (sockets[s] == null) {
+				continue;
+			}
+			try {
+				if (outs[s] != null) {
+					outs[s].writeByte(ShardServer.CLOSE);
+					outs[s].flush();
+				}
+				sockets[s].close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
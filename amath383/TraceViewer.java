@@ -0,0 +1,151 @@
+package amath383;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * <b>TraceViewer</b> prints the step by step math of a trace file
+ * written by a {@link RecallTracer}.
+ *
+ * Usage: java amath383.TraceViewer [trace file]
+ */
+public class TraceViewer {
+	private static final String[] KINDS = { "recognize", "recognizeAsyn", "recognizeStochastic" };
+
+	private final PrintStream out;
+	private double[] net = new double[0];  // net input of each node in the current recall
+	private double[] state = new double[0];  // state of each node in the current recall
+	private int step;
+
+	public TraceViewer(PrintStream out) {
+		this.out = out;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.out.println("> Usage: java amath383.TraceViewer [trace file]");
+			return;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])))) {
+			new TraceViewer(System.out).print(in);
+		}
+	}
+
+	/**
+	 * Print the records of a trace.
+	 * @param in trace.
+	 * @throws IOException if the trace is malformed.
+	 */
+	public void print(DataInputStream in) throws IOException {
+		if (in.readInt() != RecallTracer.MAGIC) {
+			throw new IOException("not a trace file");
+		}
+		while (true) {
+			int tag = in.read();
+			try {
+				switch (tag) {
+					case -1:
+						endRecall();
+						return;
+					case RecallTracer.TRAIN:
+						endRecall();
+						out.println("#-- train --#");
+						out.print(toPackedString(readPattern(in, in.readInt())));
+						break;
+					case RecallTracer.RECALL:
+						endRecall();
+						int kind = in.read();
+						state = readPattern(in, in.readInt());
+						net = new double[state.length];
+						step = 1;
+						out.println("#-- " + (kind < KINDS.length ? KINDS[kind] : "recall " + kind) + " --#");
+						out.print("Input pattern:\n" + toPackedString(state));
+						break;
+					case RecallTracer.NET:
+						int node = readNode(in);
+						double delta = in.readDouble();
+						net[node] += delta;
+						out.println("  net[" + String.format("%02d", node) + "] = " + net[node]
+								+ " (" + (delta > 0 ? "+" : "") + delta + ")");
+						break;
+					case RecallTracer.FLIP:
+						node = readNode(in);
+						state[node] = in.read();
+						out.println("  node " + String.format("%02d", node) + ": net = " + net[node]
+								+ "  ==>  " + (int) state[node]);
+						break;
+					case RecallTracer.STEP:
+						int flips = in.readInt();
+						double temperature = in.readDouble();
+						double energy = in.readDouble();
+						out.println("Step " + (step++) + ": " + flips + " nodes changed"
+								+ (temperature > 0 ? ", T = " + temperature : "") + ", Energy: " + energy + "\n----");
+						break;
+					default:
+						throw new IOException("unknown record " + tag);
+				}
+			} catch (EOFException e) {
+				out.println("(trace ends in the middle of a record)");
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Print the output pattern of the current recall, if any.
+	 */
+	private void endRecall() {
+		if (state.length > 0) {
+			out.print("Output pattern:\n" + toPackedString(state));
+			state = new double[0];
+		}
+	}
+
+	/**
+	 * Read the node of a NET or FLIP record.
+	 * @param in trace.
+	 * @return the node.
+	 * @throws IOException if there is no current recall, or it has no such node.
+	 */
+	private int readNode(DataInputStream in) throws IOException {
+		int node = in.readInt();
+		if (node < 0 || node >= state.length) {
+			throw new IOException("malformed trace");
+		}
+		return node;
+	}
+
+	/**
+	 * Read a packed pattern.
+	 * @param in trace.
+	 * @param numOfNodes number of nodes.
+	 * @return the pattern, 1 for a set bit and 0 otherwise.
+	 * @throws IOException
+	 */
+	private static double[] readPattern(DataInputStream in, int numOfNodes) throws IOException {
+		if (numOfNodes < 0) {
+			throw new IOException("malformed trace");
+		}
+		double[] bipolarPattern = new double[numOfNodes];
+		PatternStore.unpack(PatternStore.readPacked(in, numOfNodes), bipolarPattern);
+		return Hopfield.fromBipolar(bipolarPattern);
+	}
+
+	/**
+	 * Format a pattern as rows of the digit recognizer, if it fits them.
+	 * @param pattern pattern.
+	 * @return the packed string of the pattern.
+	 */
+	private static String toPackedString(double[] pattern) {
+		try {
+			int numOfRows = pattern.length % DigitRecognizer.NUM_OF_ROWS == 0 ? DigitRecognizer.NUM_OF_ROWS : 1;
+			return Matrix.getMatrix(pattern, numOfRows).toPackedString();
+		} catch (Exception e) {
+			return "";
+		}
+	}
+}
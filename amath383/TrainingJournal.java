@@ -0,0 +1,326 @@
+package amath383;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * <b>TrainingJournal</b> is an append-only log of the patterns trained
+ * into, or forgotten by, a hopfield network.
+ * Records are appended to a memory buffer and a flusher thread writes
+ * whatever has piled up with one fsync, so concurrent writers share the
+ * cost of each fsync (group commit).
+ *
+ * File format, big-endian:
+ *   header: int MAGIC, int numOfNodes, long generation
+ *   record: byte op, packed pattern as (numOfNodes + 63) / 64 longs,
+ *           int CRC32 of op and pattern
+ * A torn record at the end of the file, from a crash during a write,
+ * fails its CRC check and is ignored on replay.
+ */
+class TrainingJournal implements Closeable {
+	static final int MAGIC = 0x484A4E4C;  // "HJNL"
+	static final byte TRAIN = 1;
+	static final byte FORGET = 2;
+	private static final int HEADER_SIZE = 16;
+
+	private final File directory;
+	private final int numOfNodes;
+	private final int recordSize;
+	private final Thread flusher;
+	private FileChannel channel;
+	private long generation;
+	private ByteBuffer pending;  // records appended but not written yet
+	private ByteBuffer writing;  // records being written by the flusher
+	private long appendedRecords;
+	private long durableRecords;
+	private IOException failure;
+	private boolean closed;
+
+	/**
+	 * Start a new journal file.
+	 * @param directory directory of the journal files.
+	 * @param numOfNodes number of nodes.
+	 * @param generation generation of the new journal file.
+	 * @throws IOException
+	 */
+	TrainingJournal(File directory, int numOfNodes, long generation) throws IOException {
+		this.directory = directory;
+		this.numOfNodes = numOfNodes;
+		this.recordSize = 1 + 8 * ((numOfNodes + 63) >>> 6) + 4;
+		this.pending = ByteBuffer.allocate(64 * recordSize);
+		this.writing = ByteBuffer.allocate(64 * recordSize);
+		open(generation);
+		flusher = new Thread(this::flush, "journal-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Get the file of a journal generation.
+	 * @param directory directory of the journal files.
+	 * @param generation generation.
+	 * @return the journal file.
+	 */
+	static File file(File directory, long generation) {
+		return new File(directory, "journal-" + generation + ".log");
+	}
+
+	/**
+	 * Get the generation of a journal file.
+	 * @param file a file in the journal directory.
+	 * @return the generation, -1 if it is not a journal file.
+	 */
+	static long generation(File file) {
+		String name = file.getName();
+		if (!name.startsWith("journal-") || !name.endsWith(".log")) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return generation of the current journal file.
+	 */
+	synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Append a record.
+	 * @param op TRAIN or FORGET.
+	 * @param bipolarPattern bipolar pattern.
+	 * @return sequence number of the record, to wait for with awaitDurable.
+	 * @throws IOException if an earlier write failed.
+	 */
+	synchronized long append(byte op, double[] bipolarPattern) throws IOException {
+		checkOpen();
+		if (pending.remaining() < recordSize) {
+			ByteBuffer larger = ByteBuffer.allocate(2 * pending.capacity());
+			pending.flip();
+			larger.put(pending);
+			pending = larger;
+		}
+		int start = pending.position();
+		pending.put(op);
+		for (long word : PatternStore.pack(bipolarPattern)) {
+			pending.putLong(word);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(pending.array(), start, recordSize - 4);
+		pending.putInt((int) crc.getValue());
+		notifyAll();
+		return ++appendedRecords;
+	}
+
+	/**
+	 * Wait until a record is on disk.
+	 * @param sequence sequence number of the record.
+	 * @throws IOException if writing the record failed.
+	 * @throws InterruptedException
+	 */
+	synchronized void awaitDurable(long sequence) throws IOException, InterruptedException {
+		while (durableRecords < sequence && failure == null) {
+			wait();
+		}
+		if (durableRecords < sequence) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Close the current journal file once everything appended is on disk,
+	 * and continue in a file of the next generation.
+	 * @return the new generation.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	synchronized long rotate() throws IOException, InterruptedException {
+		checkOpen();
+		awaitDurable(appendedRecords);
+		channel.close();
+		open(generation + 1);
+		return generation;
+	}
+
+	/**
+	 * Write everything appended so far, then stop the flusher.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			channel.close();
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	/**
+	 * Replay a journal file into a hopfield network.
+	 * @param file journal file.
+	 * @param hopfield hopfield network to replay into.
+	 * @return number of records replayed.
+	 * @throws Exception if the file is not a journal of this network.
+	 */
+	static long replay(File file, Hopfield hopfield) throws Exception {
+		int numOfNodes = hopfield.getNumOfNodes();
+		int numOfWords = (numOfNodes + 63) >>> 6;
+		byte[] record = new byte[1 + 8 * numOfWords + 4];
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		double[] bipolarPattern = new double[numOfNodes];
+		long count = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != numOfNodes) {
+				throw new IOException(file + " is not a journal of " + numOfNodes + " nodes");
+			}
+			in.readLong();
+			while (true) {
+				in.readFully(record);
+				CRC32 crc = new CRC32();
+				crc.update(record, 0, record.length - 4);
+				buffer.clear();
+				byte op = buffer.get();
+				long[] packed = new long[numOfWords];
+				for (int k = 0; k < numOfWords; k++) {
+					packed[k] = buffer.getLong();
+				}
+				if (buffer.getInt() != (int) crc.getValue()) {
+					break;
+				}
+				PatternStore.unpack(packed, bipolarPattern);
+				double[] pattern = Hopfield.fromBipolar(bipolarPattern);
+				if (op == TRAIN) {
+					hopfield.train(pattern);
+				} else if (op == FORGET) {
+					hopfield.forget(pattern);
+				} else {
+					throw new IOException(file + " has an unknown record " + op);
+				}
+				count++;
+			}
+		} catch (EOFException e) {
+			// End of the journal, possibly in the middle of a torn record.
+		}
+		return count;
+	}
+
+	/**
+	 * Open a new journal file and write its header.
+	 * @param generation generation of the file.
+	 * @throws IOException
+	 */
+	private void open(long generation) throws IOException {
+		this.generation = generation;
+		channel = FileChannel.open(file(directory, generation).toPath(),
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(numOfNodes).putLong(generation).flip();
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+		channel.force(true);
+		syncDirectory(directory);
+	}
+
+	/**
+	 * Flush a directory, so that files created, renamed or deleted in it
+	 * survive a crash.
+	 * @param directory directory.
+	 * @throws IOException
+	 */
+	static void syncDirectory(File directory) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			// Some platforms, like Windows, cannot open a directory.
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * @throws IOException if the journal is closed or an earlier write failed.
+	 */
+	private void checkOpen() throws IOException {
+		if (failure != null) {
+			throw failure;
+		} else if (closed) {
+			throw new IOException("journal is closed");
+		}
+	}
+
+	/**
+	 * Flusher loop: write and fsync the pending records in batches.
+	 */
+	private void flush() {
+		while (true) {
+			FileChannel target;
+			long batchEnd;
+			synchronized (this) {
+				while (pending.position() == 0 && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (pending.position() == 0) {
+					return;
+				}
+				ByteBuffer batch = pending;
+				pending = writing;
+				writing = batch;
+				batchEnd = appendedRecords;
+				target = channel;
+			}
+			try {
+				writing.flip();
+				while (writing.hasRemaining()) {
+					target.write(writing);
+				}
+				target.force(false);
+				writing.clear();
+				synchronized (this) {
+					durableRecords = batchEnd;
+					notifyAll();
+				}
+			} catch (IOException e) {
+				synchronized (this) {
+					failure = e;
+					notifyAll();
+				}
+				return;
+			}
+		}
+	}
+}